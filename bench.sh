@@ -0,0 +1,15 @@
+#!/bin/bash
+
+# usage: ./bench.sh [SECONDS] [CLIENTS] [ACCEPTORS...]
+
+echo "[-] Compiling benchmark..."
+if ! javac src/com/mieze/httpserver/*.java page-src/com/mieze/httpserver/KeyValueStore.java bench/com/mieze/httpserver/*.java -d ./tmp-bench/; then
+    echo "[E] Compilation FAILED. (See errors above...)"
+    exit 1
+fi
+
+echo "[-] Running accept benchmark..."
+java -cp ./tmp-bench com.mieze.httpserver.AcceptBenchmark $* | tee bench_output.txt
+EXIT=${PIPESTATUS[0]}
+rm -rf tmp-bench
+exit $EXIT
@@ -0,0 +1,120 @@
+package com.mieze.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures connections per second of the server for different numbers of acceptors.
+ *
+ * Every configuration runs in a fresh server process; the clients open a new connection
+ * for every request of a tiny static file, so the accept path dominates.
+ *
+ * Usage: java com.mieze.httpserver.AcceptBenchmark [SECONDS] [CLIENTS] [ACCEPTORS...]
+ */
+public class AcceptBenchmark {
+    private static final int PORT = 18080;
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 4 * cores;
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) counts.add(Integer.parseInt(args[i]));
+        if (counts.isEmpty()) {
+            for (int n = 1; n < cores; n *= 2) counts.add(n);
+            counts.add(cores);
+        }
+
+        File root = Files.createTempDirectory("httpserver-bench").toFile();
+        // files registered last are deleted first
+        root.deleteOnExit();
+        File index = new File(root, "index.html");
+        Files.writeString(index.toPath(), "ok");
+        index.deleteOnExit();
+
+        System.out.printf("cores: %d, clients: %d, duration: %ds%n", cores, clients, seconds);
+        if (cores < 2) System.out.println("note: with a single core, differences between acceptor counts do not show scaling across cores");
+        System.out.printf("%10s %16s%n", "acceptors", "connections/s");
+        for (int n : counts) {
+            Process server = startServer(root, n);
+            try {
+                waitForPort();
+                // warm up, then measure
+                run(clients, 1);
+                double rate = run(clients, seconds);
+                System.out.printf("%10d %16.0f%n", n, rate);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private static Process startServer(File root, int acceptors) throws IOException {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Server.class.getName(),
+                "--port", PORT + "", "--web-root", root.getPath(), "--acceptors", acceptors + "")
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start");
+    }
+
+    private static double run(int clients, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder done = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                byte[] buf = new byte[1024];
+                while (running.get()) {
+                    try (Socket s = new Socket()) {
+                        s.connect(new InetSocketAddress("localhost", PORT));
+                        OutputStream out = s.getOutputStream();
+                        out.write(REQUEST);
+                        out.flush();
+                        InputStream in = s.getInputStream();
+                        while (in.read(buf) >= 0) {
+                            // read until the server closes the connection
+                        }
+                        done.increment();
+                    } catch (IOException e) {
+                        failed.increment();
+                    }
+                }
+            });
+            threads.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        long elapsed = System.nanoTime() - start;
+        for (Thread t : threads) t.join();
+        if (failed.sum() > 0) System.err.println(failed.sum() + " connection(s) failed");
+        return done.sum() * 1e9 / elapsed;
+    }
+}
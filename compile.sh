@@ -11,7 +11,8 @@ function gen_jar() {
 
 echo "[-] Starting compilation..."
 cd ./src/
-if javac com/mieze/httpserver/*.java -d ../tmp/; then
+# the store is shared with the pages, so it lives in page-src
+if javac com/mieze/httpserver/*.java ../page-src/com/mieze/httpserver/KeyValueStore.java -d ../tmp/; then
     echo "[-] Compilation finished (.class files in ./bin/)"
     echo "[-] run ./run.sh to run project"
 	cd ..
@@ -0,0 +1,277 @@
+package com.mieze.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser for request bodies (application/x-www-form-urlencoded and multipart/form-data).
+ *
+ * The body is read through a fixed size buffer, so memory usage does not depend on the size of the body.
+ */
+final class BodyParser {
+    /** parts larger than this are spilled to a temporary file */
+    static final int MEMORY_THRESHOLD = 64 * 1024;
+    /** maximum size of a single url-encoded field */
+    static final int MAX_FIELD_SIZE = 1024 * 1024;
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final int MAX_PARTS = 1000;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos = 0;
+    private int lim = 0;
+    private boolean eof = false;
+
+    private BodyParser(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(8192, delimiter.length * 2)];
+        // the first boundary is not preceded by a line break, pretend it is
+        buf[lim++] = '\r';
+        buf[lim++] = '\n';
+    }
+
+    /**
+     * Parses an url-encoded body into a map. The values are not decoded, like the GET arguments.
+     *
+     * @param in the body
+     * @param map the map to put the fields into
+     * @throws IOException if the body could not be read or a field is too large
+    */
+    static void parseUrlEncoded(InputStream in, Map<String, String> map) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        int n;
+        while ((n = in.read(b)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                if (b[i] == '&') {
+                    addField(field, map);
+                    field.reset();
+                } else {
+                    if (field.size() >= MAX_FIELD_SIZE) throw new IOException("Form field larger than " + MAX_FIELD_SIZE + " bytes");
+                    field.write(b[i]);
+                }
+            }
+        }
+        addField(field, map);
+    }
+
+    private static void addField(ByteArrayOutputStream field, Map<String, String> map) {
+        if (field.size() == 0) return;
+        String s = field.toString(StandardCharsets.ISO_8859_1);
+        int eq = s.indexOf('=');
+        if (eq < 0) map.put(s, "");
+        else map.put(s.substring(0, eq), s.substring(eq + 1));
+    }
+
+    /**
+     * Parses a multipart/form-data body into its parts.
+     *
+     * @param in the body
+     * @param boundary the boundary from the content type
+     * @return the parts
+     * @throws IOException if the body could not be read or is malformed
+    */
+    static List<Part> parseMultipart(InputStream in, String boundary) throws IOException {
+        BodyParser parser = new BodyParser(in, boundary);
+        List<Part> parts = new ArrayList<>();
+        try {
+            // skip the preamble
+            if (!parser.copyToDelimiter(null)) throw new IOException("Multipart body without boundary");
+            while (true) {
+                String line = parser.readLine();
+                if (line == null) throw new IOException("Unexpected end of multipart body");
+                if (line.startsWith("--")) break;
+                if (parts.size() >= MAX_PARTS) throw new IOException("More than " + MAX_PARTS + " parts in multipart body");
+                parts.add(parser.readPart());
+            }
+        } catch (IOException e) {
+            for (Part p : parts) p.delete();
+            throw e;
+        }
+        return parts;
+    }
+
+    private Part readPart() throws IOException {
+        String name = null;
+        String fileName = null;
+        String contentType = "text/plain";
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String key = line.substring(0, colon).trim().toLowerCase();
+            // header values are sent as raw UTF-8
+            String value = new String(line.substring(colon + 1).trim().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            if (key.equals("content-disposition")) {
+                name = parameter(value, "name");
+                fileName = parameter(value, "filename");
+            } else if (key.equals("content-type")) {
+                contentType = value;
+            }
+        }
+        if (line == null) throw new IOException("Unexpected end of multipart body");
+        if (name == null) name = "";
+
+        Spill spill = new Spill();
+        try (spill) {
+            if (!copyToDelimiter(spill)) throw new IOException("Unexpected end of multipart body");
+        } catch (IOException e) {
+            if (spill.file != null) spill.file.delete();
+            throw e;
+        }
+        byte[] data = (spill.file == null) ? spill.memory.toByteArray() : null;
+        return new Part(name, fileName, contentType, data, spill.file, spill.size);
+    }
+
+    /**
+     * Copies everything up to the next delimiter to out and skips the delimiter.
+     *
+     * @return false if the body ended before a delimiter was found
+    */
+    private boolean copyToDelimiter(OutputStream out) throws IOException {
+        int d = delimiter.length;
+        while (true) {
+            if (lim - pos < d && !eof) {
+                fill();
+                continue;
+            }
+            int i = indexOf(delimiter);
+            if (i >= 0) {
+                if (out != null) out.write(buf, pos, i - pos);
+                pos = i + d;
+                return true;
+            }
+            if (eof) {
+                pos = lim;
+                return false;
+            }
+            // keep the tail, it could be the start of a delimiter
+            int safe = lim - (d - 1);
+            if (out != null) out.write(buf, pos, safe - pos);
+            pos = safe;
+        }
+    }
+
+    private int indexOf(byte[] pattern) {
+        outer:
+        for (int i = pos; i <= lim - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos == lim) {
+                if (eof) {
+                    if (sb.length() == 0) return null;
+                    break;
+                }
+                fill();
+                continue;
+            }
+            byte b = buf[pos++];
+            if (b == '\n') break;
+            if (sb.length() >= MAX_HEADER_LINE) throw new IOException("Multipart header line too long");
+            sb.append((char) (b & 0xff));
+        }
+        int l = sb.length();
+        if (l > 0 && sb.charAt(l - 1) == '\r') sb.setLength(l - 1);
+        return sb.toString();
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            pos = 0;
+        }
+        int n = in.read(buf, lim, buf.length - lim);
+        if (n < 0) eof = true;
+        else lim += n;
+    }
+
+    /**
+     * Returns a parameter of a header value like {@code form-data; name="file"; filename="a.txt"}.
+     *
+     * @param header the header value
+     * @param key the name of the parameter
+     * @return the (unquoted) value, or null if not present
+    */
+    static String parameter(String header, String key) {
+        int len = header.length();
+        int i = header.indexOf(';');
+        while (i >= 0) {
+            int eq = header.indexOf('=', i);
+            if (eq < 0) return null;
+            String k = header.substring(i + 1, eq).trim();
+            String value;
+            int end = eq + 1;
+            if (end < len && header.charAt(end) == '"') {
+                StringBuilder sb = new StringBuilder();
+                end++;
+                while (end < len && header.charAt(end) != '"') {
+                    if (header.charAt(end) == '\\' && end + 1 < len) end++;
+                    sb.append(header.charAt(end++));
+                }
+                value = sb.toString();
+                end = header.indexOf(';', end);
+            } else {
+                end = header.indexOf(';', end);
+                value = header.substring(eq + 1, (end < 0) ? len : end).trim();
+            }
+            if (k.equalsIgnoreCase(key)) return value;
+            i = end;
+        }
+        return null;
+    }
+
+    /**
+     * Buffers a part in memory and switches to a temporary file once it grows above {@link #MEMORY_THRESHOLD}.
+    */
+    private static class Spill extends OutputStream {
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file = null;
+        private OutputStream fileOut = null;
+        private long size = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && size + len > MEMORY_THRESHOLD) {
+                file = Files.createTempFile("httpserver-upload", ".part").toFile();
+                file.deleteOnExit();
+                fileOut = new FileOutputStream(file);
+                memory.writeTo(fileOut);
+                memory.reset();
+            }
+            if (fileOut != null) fileOut.write(b, off, len);
+            else memory.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) fileOut.close();
+        }
+    }
+}
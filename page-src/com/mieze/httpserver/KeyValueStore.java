@@ -0,0 +1,378 @@
+package com.mieze.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A concurrent key-value store with expiry, a size limit and an optional append-only log on disk.<br>
+ *
+ * The server hosts one instance for all pages (see {@link Store}); this class also defines the
+ * operations of the protocol between pages and the server.
+ * Values of a session ({@code session:ID:KEY}) live as long as the session's own key ({@code session:ID}),
+ * so refreshing that key keeps the whole session alive.
+ */
+final class KeyValueStore {
+    // operations, used by the protocol and the log
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte DELETE = 3;
+    static final byte COMPARE_AND_SET = 4;
+    static final byte INCREMENT = 5;
+    static final byte TOUCH = 6;
+    // not a store operation: sends a message to the WebSocket/event stream subscribers of a topic
+    static final byte PUBLISH = 7;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int MAX_STRING_SIZE = 1024 * 1024;
+    static final String SESSION_PREFIX = "session:";
+    // entries looked at to find one to evict (approximated LRU)
+    private static final int EVICTION_SAMPLES = 16;
+
+    private static final class Entry {
+        final String value;
+        final long expires;
+        volatile long used;
+
+        Entry(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+            this.used = System.nanoTime();
+        }
+
+        boolean isExpired(long now) {
+            return expires > 0 && now >= expires;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final File logFile;
+    private DataOutputStream log = null;
+    private long logRecords = 0;
+
+    /**
+     * @param maxSize the maximum number of entries, least recently used ones are evicted
+     * @param logFile the file mutations are appended to and replayed from on start, or null
+     * @throws IOException if the log could not be read or opened
+    */
+    KeyValueStore(int maxSize, File logFile) throws IOException {
+        this.maxSize = maxSize;
+        this.logFile = logFile;
+        if (logFile != null) {
+            if (logFile.exists()) replay();
+            // rewriting drops overwritten records and a torn last record
+            compact();
+        }
+    }
+
+    String get(String key) {
+        Entry e = map.get(key);
+        if (e == null) return null;
+        if (isExpired(key, e, System.currentTimeMillis())) {
+            map.remove(key, e);
+            return null;
+        }
+        e.used = System.nanoTime();
+        return e.value;
+    }
+
+    /**
+     * @param ttl the time to live in milliseconds, 0 for no expiry
+    */
+    void put(String key, String value, long ttl) {
+        checkSize(key);
+        checkSize(value);
+        Entry entry = new Entry(value, expires(ttl));
+        map.compute(key, (k, old) -> {
+            append(PUT, k, entry);
+            return entry;
+        });
+        evict();
+    }
+
+    boolean delete(String key) {
+        boolean[] removed = {false};
+        map.computeIfPresent(key, (k, old) -> {
+            removed[0] = !isExpired(k, old, System.currentTimeMillis());
+            append(DELETE, k, null);
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Atomically replaces the value of a key, if it is the expected one.
+     *
+     * @param expect the expected value, null if the key is expected to be absent
+     * @param update the new value, null to delete the key
+     * @param ttl the time to live of the new value in milliseconds, 0 for no expiry
+     * @return if the value was replaced
+    */
+    boolean compareAndSet(String key, String expect, String update, long ttl) {
+        checkSize(key);
+        checkSize(update);
+        boolean[] swapped = {false};
+        map.compute(key, (k, old) -> {
+            String current = (old == null || isExpired(k, old, System.currentTimeMillis())) ? null : old.value;
+            if ((current == null) ? expect != null : !current.equals(expect)) return old;
+            swapped[0] = true;
+            if (update == null) {
+                if (old != null) append(DELETE, k, null);
+                return null;
+            }
+            Entry entry = new Entry(update, expires(ttl));
+            append(PUT, k, entry);
+            return entry;
+        });
+        if (swapped[0]) evict();
+        return swapped[0];
+    }
+
+    /**
+     * Atomically adds a number to the value of a key. Absent keys count as 0.
+     *
+     * @param ttl the time to live in milliseconds if the key is created, 0 for no expiry
+     * @return the new value
+     * @throws NumberFormatException if the current value is not a number
+    */
+    long increment(String key, long delta, long ttl) {
+        checkSize(key);
+        long[] result = {0};
+        map.compute(key, (k, old) -> {
+            boolean absent = old == null || isExpired(k, old, System.currentTimeMillis());
+            result[0] = (absent ? 0 : Long.parseLong(old.value)) + delta;
+            Entry entry = new Entry(Long.toString(result[0]), absent ? expires(ttl) : old.expires);
+            append(PUT, k, entry);
+            return entry;
+        });
+        evict();
+        return result[0];
+    }
+
+    /**
+     * Sets a new time to live for an existing key.
+     *
+     * @return if the key exists
+    */
+    boolean touch(String key, long ttl) {
+        boolean[] found = {false};
+        map.computeIfPresent(key, (k, old) -> {
+            if (isExpired(k, old, System.currentTimeMillis())) return null;
+            found[0] = true;
+            Entry entry = new Entry(old.value, expires(ttl));
+            append(PUT, k, entry);
+            return entry;
+        });
+        return found[0];
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    /**
+     * Removes all expired entries.
+    */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        map.entrySet().removeIf(e -> isExpired(e.getKey(), e.getValue(), now));
+    }
+
+    /**
+     * Flushes and closes the log.
+    */
+    synchronized void close() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Could not close store log: " + e.getMessage());
+        }
+        log = null;
+    }
+
+    private static long expires(long ttl) {
+        return (ttl > 0) ? System.currentTimeMillis() + ttl : 0;
+    }
+
+    /**
+     * Returns the key a value lives with, e.g. {@code session:ID} for {@code session:ID:KEY}.
+     *
+     * @return the key, or null if the value only expires by itself
+    */
+    static String owner(String key) {
+        if (!key.startsWith(SESSION_PREFIX)) return null;
+        int end = key.indexOf(':', SESSION_PREFIX.length());
+        return (end < 0) ? null : key.substring(0, end);
+    }
+
+    private boolean isExpired(String key, Entry e, long now) {
+        if (e.isExpired(now)) return true;
+        String owner = owner(key);
+        if (owner == null) return false;
+        Entry o = map.get(owner);
+        return o == null || o.isExpired(now);
+    }
+
+    private void evict() {
+        while (map.size() > maxSize) {
+            Map.Entry<String, Entry> victim = sample(randomRegion());
+            // the region may have been emptied concurrently
+            if (victim == null) victim = sample(map.entrySet().spliterator());
+            if (victim == null) return;
+            Entry target = victim.getValue();
+            map.computeIfPresent(victim.getKey(), (k, old) -> {
+                if (old != target) return old;
+                append(DELETE, k, null);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Returns a random part of the map with about {@link #EVICTION_SAMPLES} entries, so evictions do not
+     * always look at the same entries. Splitting halves the range of the hash table, so this takes O(log n).
+    */
+    private Spliterator<Map.Entry<String, Entry>> randomRegion() {
+        Spliterator<Map.Entry<String, Entry>> region = map.entrySet().spliterator();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (region.estimateSize() > EVICTION_SAMPLES) {
+            Spliterator<Map.Entry<String, Entry>> half = region.trySplit();
+            if (half == null) break;
+            if (random.nextBoolean()) region = half;
+        }
+        return region;
+    }
+
+    /**
+     * Picks the entry to evict from the first {@link #EVICTION_SAMPLES} entries: an expired one, or the least recently used.
+    */
+    private Map.Entry<String, Entry> sample(Spliterator<Map.Entry<String, Entry>> entries) {
+        long now = System.currentTimeMillis();
+        Map.Entry<String, Entry> victim = null;
+        Iterator<Map.Entry<String, Entry>> it = Spliterators.iterator(entries);
+        for (int i = 0; i < EVICTION_SAMPLES && it.hasNext(); i++) {
+            Map.Entry<String, Entry> e = it.next();
+            if (isExpired(e.getKey(), e.getValue(), now)) return e;
+            if (victim == null || e.getValue().used < victim.getValue().used) victim = e;
+        }
+        return victim;
+    }
+
+    // called while holding the lock of the key in the map, so the log has the same order as the map
+    private synchronized void append(byte op, String key, Entry entry) {
+        if (log == null) return;
+        try {
+            writeRecord(log, op, key, entry);
+            log.flush();
+            logRecords++;
+            if (logRecords > 2L * map.size() + 1024) compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String key, Entry entry) throws IOException {
+        out.writeByte(op);
+        writeString(out, key);
+        if (op == PUT) {
+            writeString(out, entry.value);
+            out.writeLong(entry.expires);
+        }
+    }
+
+    private void replay() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String key = readString(in);
+                if (op == PUT) {
+                    Entry e = new Entry(readString(in), in.readLong());
+                    if (e.isExpired(now)) map.remove(key);
+                    else map.put(key, e);
+                } else if (op == DELETE) {
+                    map.remove(key);
+                } else {
+                    throw new IOException("Corrupt store log " + logFile);
+                }
+            }
+        } catch (EOFException e) {
+            // end of the log, or a record torn by a crash
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries.
+    */
+    private synchronized void compact() throws IOException {
+        if (log != null) log.close();
+        File tmp = new File(logFile.getPath() + ".tmp");
+        long now = System.currentTimeMillis();
+        logRecords = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<String, Entry> e : map.entrySet()) {
+                if (isExpired(e.getKey(), e.getValue(), now)) continue;
+                writeRecord(out, PUT, e.getKey(), e.getValue());
+                logRecords++;
+            }
+        }
+        Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+    }
+
+    /**
+     * Checks that a {@link String} can be written with {@link #writeString}, before anything is written.
+     *
+     * @throws IllegalArgumentException if the {@link String} is too large
+    */
+    static void checkSize(String s) {
+        if (s == null || s.length() <= MAX_STRING_SIZE / 3) return;
+        if (s.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_SIZE) {
+            throw new IllegalArgumentException("String larger than " + MAX_STRING_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Writes a nullable UTF-8 {@link String} with its length.
+    */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Reads a {@link String} written by {@link #writeString}.
+    */
+    static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        if (len > MAX_STRING_SIZE) throw new IOException("String larger than " + MAX_STRING_SIZE + " bytes");
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
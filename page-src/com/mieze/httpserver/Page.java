@@ -1,6 +1,10 @@
 package com.mieze.httpserver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Represents a java page that can be run on the {@link com.mieze.httpserver.Server}.
@@ -12,10 +16,18 @@ public abstract class Page implements Utils {
     private String userAgent = "";
     private String method = "";
     private int port = 0;
+    private String contentType = "";
+    private long contentLength = 0;
+    private List<Part> parts = Collections.emptyList();
+    private String sessionId = "";
+    private long sessionTimeout = 0;
+    private boolean sessionStarted = false;
 
     /**
      * Initialized the page and parses tha arguments from the server.
      *
+     * The request body is read from stdin, its type and length from the CONTENT_TYPE and CONTENT_LENGTH environment variables.
+     *
      * @param args the arguments from the server {method, host, port, referer, userAgent, ARGS}
     */
     public void init(String[] args) {
@@ -48,10 +60,47 @@ public abstract class Page implements Utils {
         }
 
         this.method = args[0];
+        String type = System.getenv("CONTENT_TYPE");
+        if (type != null) this.contentType = type;
+        try {
+            this.contentLength = Long.parseLong(System.getenv("CONTENT_LENGTH"));
+        } catch (NumberFormatException e) {
+            this.contentLength = 0;
+        }
+        String session = System.getenv("SESSION_ID");
+        if (session != null) this.sessionId = session;
+        try {
+            this.sessionTimeout = Long.parseLong(System.getenv("SESSION_TIMEOUT"));
+        } catch (NumberFormatException e) {
+            this.sessionTimeout = 0;
+        }
+
         try {
+            readBody(map);
             this.request(map);
         } catch (Exception e) {
             showException(e);
+        } finally {
+            for (Part p : parts) p.delete();
+        }
+    }
+
+    /**
+     * Parses form bodies into the argument map (and the parts). Other bodies are left on stdin for {@link #getBody()}.
+     *
+     * @param map the argument map
+    */
+    private void readBody(HashMap<String, String> map) throws IOException {
+        String type = contentType.toLowerCase();
+        if (type.startsWith("application/x-www-form-urlencoded")) {
+            BodyParser.parseUrlEncoded(System.in, map);
+        } else if (type.startsWith("multipart/form-data")) {
+            String boundary = BodyParser.parameter(contentType, "boundary");
+            if (boundary == null) throw new IOException("Multipart body without boundary");
+            parts = BodyParser.parseMultipart(System.in, boundary);
+            for (Part p : parts) {
+                if (p.getFileName() == null && p.isInMemory()) map.put(p.getName(), p.getString());
+            }
         }
     }
 
@@ -131,6 +180,108 @@ public abstract class Page implements Utils {
         return method;
     }
 
+    /**
+     * Returns the content type of the request body.
+     *
+     * @return the content type, or an empty string if there is no body
+    */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the length of the request body in bytes.
+     *
+     * @return the length
+    */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the raw request body as a stream.<br>
+     *
+     * Url-encoded and multipart bodies are already consumed by the page, use the arguments and {@link #getParts()} for them.
+     *
+     * @return the body
+    */
+    public InputStream getBody() {
+        return System.in;
+    }
+
+    /**
+     * Returns all parts of a multipart/form-data body.<br>
+     *
+     * Small form fields are also contained in the argument map (not url-encoded).
+     * Temporary files of large parts are deleted after {@link #request} returned.
+     *
+     * @return the parts, empty if the body is not multipart
+    */
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    /**
+     * Returns the first part of a multipart/form-data body with a given name.
+     *
+     * @param name the name of the form field
+     * @return the {@link Part}, or null if not present
+    */
+    public Part getPart(String name) {
+        for (Part p : parts) {
+            if (p.getName().equals(name)) return p;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the {@link Store} shared by all pages of the server, e.g. for counters.
+     *
+     * @return the {@link Store}
+    */
+    public Store getStore() {
+        return Store.get();
+    }
+
+    /**
+     * Sends a message to all WebSocket and event stream clients subscribed to a path of the server.
+     *
+     * @param topic the path, e.g. "/dashboard"
+     * @param message the message
+     * @see Store#publish(String, String)
+    */
+    public void publish(String topic, String message) {
+        Store.get().publish(topic, message);
+    }
+
+    /**
+     * Returns the id of the user's session, which the server keeps in a cookie.
+     *
+     * @return the session id, or an empty string if the page was not started by the server
+    */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the part of the {@link Store} that belongs to the user's session, and starts the session if needed.<br>
+     *
+     * Values live as long as the session, which ends after the session timeout of the server without a request.
+     * The session cookie is only sent to users whose session was started.
+     *
+     * @return the session {@link Store}
+    */
+    public Store getSession() {
+        Store store = Store.get();
+        String key = KeyValueStore.SESSION_PREFIX + sessionId;
+        if (!sessionStarted) {
+            // only creates the session's key if the server did not already know it
+            store.withPrefix("", sessionTimeout).compareAndSet(key, null, "");
+            sessionStarted = true;
+        }
+        return store.withPrefix(key + ":", 0);
+    }
+
     /**
      * This method will be called if the initialization was sucessful.
      *
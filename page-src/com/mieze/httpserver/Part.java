@@ -0,0 +1,132 @@
+package com.mieze.httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Represents one part of a multipart/form-data request body (a form field or an uploaded file).
+ *
+ * Small parts are kept in memory, larger ones are spilled to a temporary file,
+ * which is deleted after {@link Page#request} returned.
+ */
+public class Part {
+    private final String name;
+    private final String fileName;
+    private final String contentType;
+    private final byte[] data;
+    private final File file;
+    private final long size;
+
+    Part(String name, String fileName, String contentType, byte[] data, File file, long size) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.data = data;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Returns the name of the form field.
+     *
+     * @return the name
+    */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the file name sent by the client, if this part is a file upload.
+     *
+     * @return the file name, or null if this part is a normal form field
+    */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the content type of this part (defaults to "text/plain").
+     *
+     * @return the content type
+    */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the size of the content in bytes.
+     *
+     * @return the size
+    */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns if the content is held in memory, or was spilled to a temporary file.
+     *
+     * @return true if the content is in memory
+    */
+    public boolean isInMemory() {
+        return data != null;
+    }
+
+    /**
+     * Opens a new {@link InputStream} over the content.
+     *
+     * @return the stream
+     * @throws IOException if the temporary file could not be opened
+    */
+    public InputStream getInputStream() throws IOException {
+        if (data != null) return new ByteArrayInputStream(data);
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Reads the whole content as a UTF-8 {@link String}.<br>
+     *
+     * For large uploads, use {@link #getInputStream()} or {@link #saveTo(String)} instead.
+     *
+     * @return the content
+     * @throws IOException if the temporary file could not be read
+    */
+    public String getString() throws IOException {
+        if (data != null) return new String(data, StandardCharsets.UTF_8);
+        return Files.readString(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the content to a given file, replacing it if it exists.
+     *
+     * Spilled parts are moved instead of copied if possible.
+     *
+     * @param fileName the path to the {@link File}
+     * @throws IOException if the file could not be written
+    */
+    public void saveTo(String fileName) throws IOException {
+        Path dest = Path.of(fileName);
+        if (data != null) {
+            Files.write(dest, data);
+            return;
+        }
+        try {
+            Files.move(file.toPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.copy(file.toPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the temporary file of this part, if any.
+    */
+    void delete() {
+        if (file != null) file.delete();
+    }
+}
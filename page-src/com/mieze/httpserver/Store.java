@@ -0,0 +1,194 @@
+package com.mieze.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * A key-value store shared by all pages of a server.<br>
+ *
+ * Pages started by the server talk to the server's store over a local socket, so values survive the page
+ * and are seen by other requests. If a page runs without the server (e.g. started by hand), it gets a store
+ * that only lives as long as the page.
+ * Values can expire, and the least recently used values are evicted if the store is full.
+ */
+public class Store {
+    private static final int LOCAL_SIZE = 10_000;
+    private static Store instance = null;
+
+    private final Connection connection;
+    private final KeyValueStore local;
+    private final String prefix;
+    private final long defaultTtl;
+
+    private Store(Connection connection, KeyValueStore local, String prefix, long defaultTtl) {
+        this.connection = connection;
+        this.local = local;
+        this.prefix = prefix;
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Returns the store of the server running this page.
+     *
+     * @return the {@link Store}
+    */
+    public static synchronized Store get() {
+        if (instance != null) return instance;
+        String path = System.getenv("HTTPSERVER_STORE");
+        try {
+            if (path != null && path.length() > 0) {
+                instance = new Store(new Connection(Path.of(path)), null, "", 0);
+            } else {
+                instance = new Store(null, new KeyValueStore(LOCAL_SIZE, null), "", 0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a view of this store, in which all keys start with a given prefix and values expire after a given time.
+     *
+     * @param prefix the prefix
+     * @param ttl the time to live of new values in milliseconds, 0 for no expiry
+     * @return the view
+    */
+    public Store withPrefix(String prefix, long ttl) {
+        return new Store(connection, local, this.prefix + prefix, ttl);
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key
+     * @return the value, or null if the key is not present or expired
+    */
+    public String get(String key) {
+        if (local != null) return local.get(prefix + key);
+        return connection.call(KeyValueStore.GET, prefix + key, null, null, 0, 0).string;
+    }
+
+    /**
+     * Sets the value of a key, with the default expiry of this store.
+     *
+     * @param key the key
+     * @param value the value
+    */
+    public void put(String key, String value) {
+        put(key, value, defaultTtl);
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl the time to live in milliseconds, 0 for no expiry
+    */
+    public void put(String key, String value, long ttl) {
+        if (value == null) throw new NullPointerException("value");
+        if (local != null) local.put(prefix + key, value, ttl);
+        else connection.call(KeyValueStore.PUT, prefix + key, value, null, 0, ttl);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return if the key was present
+    */
+    public boolean delete(String key) {
+        if (local != null) return local.delete(prefix + key);
+        return connection.call(KeyValueStore.DELETE, prefix + key, null, null, 0, 0).number != 0;
+    }
+
+    /**
+     * Atomically replaces the value of a key, if it currently has the expected value.
+     *
+     * @param key the key
+     * @param expect the expected value, null if the key is expected to be absent
+     * @param update the new value, null to remove the key
+     * @return if the value was replaced
+    */
+    public boolean compareAndSet(String key, String expect, String update) {
+        if (local != null) return local.compareAndSet(prefix + key, expect, update, defaultTtl);
+        return connection.call(KeyValueStore.COMPARE_AND_SET, prefix + key, expect, update, 0, defaultTtl).number != 0;
+    }
+
+    /**
+     * Atomically adds a number to the value of a key, e.g. for counters. Absent keys count as 0.
+     *
+     * @param key the key
+     * @param delta the number to add
+     * @return the new value
+     * @throws IllegalArgumentException if the current value is not a number
+    */
+    public long increment(String key, long delta) {
+        if (local != null) return local.increment(prefix + key, delta, defaultTtl);
+        return connection.call(KeyValueStore.INCREMENT, prefix + key, null, null, delta, defaultTtl).number;
+    }
+
+    /**
+     * Sends a message to all WebSocket and event stream (Server-Sent Events) clients subscribed to a topic.<br>
+     *
+     * Clients subscribe by opening a WebSocket or an EventSource on a path of the server, which is the topic.
+     * Without the server, messages are dropped.
+     *
+     * @param topic the topic, e.g. "/dashboard"
+     * @param message the message
+    */
+    public void publish(String topic, String message) {
+        if (message == null) throw new NullPointerException("message");
+        if (local == null) connection.call(KeyValueStore.PUBLISH, topic.toLowerCase(), message, null, 0, 0);
+    }
+
+    private record Result(String string, long number) {};
+
+    /**
+     * A connection to the store of the server. Calls are serialized, a page usually only has one thread.
+     */
+    private static class Connection {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(Path path) throws IOException {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(path));
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+
+        synchronized Result call(byte op, String key, String a, String b, long number, long ttl) {
+            KeyValueStore.checkSize(key);
+            KeyValueStore.checkSize(a);
+            KeyValueStore.checkSize(b);
+            try {
+                out.writeByte(op);
+                KeyValueStore.writeString(out, key);
+                KeyValueStore.writeString(out, a);
+                KeyValueStore.writeString(out, b);
+                out.writeLong(number);
+                out.writeLong(ttl);
+                out.flush();
+
+                byte status = in.readByte();
+                String string = KeyValueStore.readString(in);
+                long result = in.readLong();
+                if (status != KeyValueStore.OK) throw new IllegalArgumentException(string);
+                return new Result(string, result);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
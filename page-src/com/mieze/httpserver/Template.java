@@ -0,0 +1,245 @@
+package com.mieze.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled HTML template.<br>
+ *
+ * Templates are plain text files with slots: {@code {{name}}} is replaced with the HTML escaped value,
+ * {@code {{{name}}}} with the raw value. A template is parsed once into literal byte segments and slots
+ * and rendered straight into an {@link OutputStream}, without formatting or building intermediate strings.
+ * Templates loaded with {@link #get(String)} are cached and reloaded when their file changes. Every request
+ * runs the page in a new JVM, so the cache only lasts for one request: it helps pages rendering a template
+ * more than once (e.g. once per row of a table), the first render of a request always parses the file.
+ */
+public final class Template {
+    private static final ConcurrentHashMap<Path, Template> CACHE = new ConcurrentHashMap<>();
+    private static final int BUFFER_SIZE = 4096;
+    private static final byte[] BR = "<br>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAB = "    ".getBytes(StandardCharsets.US_ASCII);
+
+    // literals[i] is written before slot i, the last literal after the last slot
+    private final byte[][] literals;
+    private final String[] names;
+    private final boolean[] raw;
+    private final long modified;
+    private final long size;
+
+    private Template(byte[][] literals, String[] names, boolean[] raw, long modified, long size) {
+        this.literals = literals;
+        this.names = names;
+        this.raw = raw;
+        this.modified = modified;
+        this.size = size;
+    }
+
+    /**
+     * Returns the compiled template of a file, relative to the web root.<br>
+     *
+     * Within one run of the page, the template is only parsed again if the file was modified since it was last compiled.
+     *
+     * @param fileName the path to the template file
+     * @return the {@link Template}
+     * @throws IOException if the file could not be read
+    */
+    public static Template get(String fileName) throws IOException {
+        Path path = Path.of(fileName).toAbsolutePath();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        Template cached = CACHE.get(path);
+        if (cached != null && cached.modified == modified && cached.size == attrs.size()) return cached;
+
+        Template t = compile(Files.readString(path, StandardCharsets.UTF_8), modified, attrs.size());
+        CACHE.put(path, t);
+        return t;
+    }
+
+    /**
+     * Compiles a template from a {@link String}. The result is not cached.
+     *
+     * @param source the template
+     * @return the {@link Template}
+    */
+    public static Template compile(String source) {
+        return compile(source, 0, 0);
+    }
+
+    private static Template compile(String source, long modified, long size) {
+        List<byte[]> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Boolean> raw = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < source.length()) {
+            int open = source.indexOf("{{", i);
+            if (open < 0) break;
+            boolean isRaw = source.startsWith("{{{", open);
+            if (isRaw && !source.startsWith("}}}", Math.max(source.indexOf("}}", open + 3), 0))) {
+                // "{{{" closed by "}}": the first brace is text and the rest an escaped slot
+                isRaw = false;
+                open++;
+            }
+            String close = isRaw ? "}}}" : "}}";
+            int start = open + close.length();
+            int end = source.indexOf(close, start);
+            // no closing "}}" anywhere after this, so the rest is text
+            if (end < 0) break;
+
+            literal.append(source, i, open);
+            literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+            literal.setLength(0);
+            names.add(source.substring(start, end).trim());
+            raw.add(isRaw);
+            i = end + close.length();
+        }
+        literal.append(source, i, source.length());
+        literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+
+        boolean[] rawArr = new boolean[raw.size()];
+        for (int j = 0; j < rawArr.length; j++) rawArr[j] = raw.get(j);
+        return new Template(literals.toArray(new byte[0][]), names.toArray(new String[0]), rawArr, modified, size);
+    }
+
+    /**
+     * Renders the template with the given values into a stream.<br>
+     *
+     * Missing values are rendered as empty strings. Integer values are written without conversion to a {@link String}.
+     *
+     * @param out the stream
+     * @param values the values of the slots
+     * @throws IOException if the stream could not be written
+    */
+    public void render(OutputStream out, Map<String, ?> values) throws IOException {
+        Sink sink = new Sink(out);
+        for (int i = 0; i < names.length; i++) {
+            sink.write(literals[i]);
+            Object value = values.get(names[i]);
+            if (value == null) continue;
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                sink.writeLong(((Number) value).longValue());
+            } else if (raw[i]) {
+                sink.writeRaw(value.toString());
+            } else {
+                sink.writeEscaped(value.toString());
+            }
+        }
+        sink.write(literals[names.length]);
+        sink.flush();
+    }
+
+    /**
+     * Buffers the output of one render call and encodes values straight into the buffer.
+     */
+    private static final class Sink {
+        private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos = 0;
+
+        Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] b) throws IOException {
+            if (b.length > buf.length - pos) {
+                drain();
+                if (b.length > buf.length) {
+                    out.write(b);
+                    return;
+                }
+            }
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.length - pos < n) drain();
+        }
+
+        void writeLong(long v) throws IOException {
+            ensure(20);
+            if (v < 0) {
+                buf[pos++] = '-';
+            } else {
+                v = -v;
+            }
+            // digits are produced from negative values, so Long.MIN_VALUE works as well
+            int start = pos;
+            do {
+                buf[pos++] = (byte) ('0' - (v % 10));
+                v /= 10;
+            } while (v != 0);
+            for (int i = start, j = pos - 1; i < j; i++, j--) {
+                byte t = buf[i];
+                buf[i] = buf[j];
+                buf[j] = t;
+            }
+        }
+
+        /** Same escaping as {@link Utils#escapeHTML(String)}, but characters outside the BMP become a single entity. */
+        void writeEscaped(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c > 127 || c == '"' || c == '\'' || c == '<' || c == '>' || c == '&') {
+                    int cp = s.codePointAt(i);
+                    if (Character.isSupplementaryCodePoint(cp)) i++;
+                    ensure(24);
+                    buf[pos++] = '&';
+                    buf[pos++] = '#';
+                    writeLong(cp);
+                    buf[pos++] = ';';
+                } else if (c == '\n') {
+                    write(BR);
+                } else if (c == '\t') {
+                    write(TAB);
+                } else {
+                    ensure(1);
+                    buf[pos++] = (byte) c;
+                }
+            }
+        }
+
+        void writeRaw(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                ensure(4);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    if (Character.isSurrogate(c)) c = '?';
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            if (pos > 0) out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+    }
+}
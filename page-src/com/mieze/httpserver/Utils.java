@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Base64;
 import java.util.Date;
+import java.util.Map;
 import java.text.SimpleDateFormat;
 
 /**
@@ -28,8 +29,17 @@ abstract interface Utils {
 
     public default String escapeHTML(final String s) {
         if (s==null) return "";
+        int i = 0;
+        while (i < s.length()) {
+            final char c = s.charAt(i);
+            if (c > 127 || c == '"' || c == '\'' || c == '<' || c == '>' || c == '&' || c == '\n' || c == '\t') break;
+            i++;
+        }
+        // nothing to escape, no copy needed
+        if (i == s.length()) return s;
         final StringBuilder out = new StringBuilder(Math.max(16, s.length()));
-        for (int i = 0; i < s.length(); i++) {
+        out.append(s, 0, i);
+        for (; i < s.length(); i++) {
             final char c = s.charAt(i);
             if (c > 127 || c == '"' || c == '\'' || c == '<' || c == '>' || c == '&') {
                 out.append("&#");
@@ -102,6 +112,23 @@ abstract interface Utils {
         System.out.printf(str, args);
     }
 
+    /**
+     * Renders a template file from the web root with the given values and prints it.<br>
+     *
+     * {@code {{name}}} is replaced with the HTML escaped value, {@code {{{name}}}} with the raw value.
+     * The template is compiled on the first render of the page and cached while the page runs, see {@link Template}.
+     *
+     * @param fileName the path to the template file
+     * @param values the values of the slots
+    */
+    public default void render(String fileName, Map<String, ?> values) {
+        try {
+            Template.get(fileName).render(System.out, values);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Reads a given {@link java.io.File} from the file system and outputs its content as a {@link String}.
      *
@@ -0,0 +1,93 @@
+package com.mieze.httpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections on its own listening socket and hands them to its own pool of handler threads,
+ * watched by its own {@link ConnectionGuard.Watchdog}.
+ *
+ * With more than one acceptor every listener is bound with SO_REUSEPORT on the same port,
+ * so the kernel balances new connections across them instead of all threads contending for one accept queue.
+ */
+class Acceptor implements Runnable {
+    // accept() wakes up this often to notice the drain, and waits this long for the backlog while draining
+    private static final int ACCEPT_POLL = 250;
+    static final int BACKLOG_POLL = 50;
+    // a listener sharing the port keeps receiving connections until it is closed, so the backlog is drained at most this long
+    private static final int BACKLOG_GRACE = 1000;
+    private static final int BACKLOG = 1024;
+
+    private final int id;
+    private final ServerSocketChannel channel;
+    private final ExecutorService handlers;
+    private final ConnectionGuard.Watchdog watchdog;
+
+    public Acceptor(int id, boolean reusePort) throws IOException {
+        this.id = id;
+        this.channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(Server.PORT), BACKLOG);
+        } catch (IOException|UnsupportedOperationException e) {
+            channel.close();
+            throw e;
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.handlers = Executors.newCachedThreadPool(r -> new Thread(r, "handler-" + id + "-" + count.incrementAndGet()));
+        this.watchdog = new ConnectionGuard.Watchdog("watchdog-" + id);
+    }
+
+    /**
+     * @return if SO_REUSEPORT can be used on this platform
+     */
+    public static boolean supportsReusePort() {
+        try (ServerSocketChannel c = ServerSocketChannel.open()) {
+            return c.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        // the socket adapter is used, because channel.accept() ignores SO_TIMEOUT
+        try (ServerSocket listener = channel.socket()) {
+            listener.setSoTimeout(ACCEPT_POLL);
+            while (true) {
+                Socket socket;
+                try {
+                    socket = listener.accept();
+                } catch (SocketTimeoutException e) {
+                    // while draining, a timeout means the backlog is empty
+                    if (Server.isDraining()) break;
+                    continue;
+                }
+                Server ws = new Server(socket, watchdog);
+                Server.ACTIVE.add(ws);
+                if (Server.VERBOSE) System.out.println("Connection opened at " + new Date() + " (acceptor " + id + ").");
+                handlers.execute(ws);
+
+                if (Server.isDraining()) {
+                    if (System.currentTimeMillis() - Server.getDrainStart() > BACKLOG_GRACE) break;
+                    listener.setSoTimeout(BACKLOG_POLL);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Server connection error.\nStack trace:\n");
+            e.printStackTrace();
+        } finally {
+            // running handlers finish, idle threads exit
+            handlers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.mieze.httpserver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Enforces the deadlines of a single connection.
+ *
+ * A {@link Watchdog} checks every guarded connection once per second and closes the
+ * socket if the request head was not received in time, the whole request took too long,
+ * or the client transferred data slower than the configured minimum rate.
+ * Closing the socket unblocks the connection thread, which then unwinds normally.
+ */
+class ConnectionGuard {
+    /** time of I/O after which the minimum rate is enforced, so short bursts are not penalized. */
+    private static final long RATE_GRACE = 5_000;
+    private static final long CHECK_INTERVAL = 1_000;
+
+    /**
+     * A thread checking the guards of one acceptor, so acceptors do not share a timer queue.
+     */
+    static final class Watchdog implements Runnable {
+        private final Set<ConnectionGuard> guards = ConcurrentHashMap.newKeySet();
+
+        public Watchdog(String name) {
+            Thread t = new Thread(this, name);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (ConnectionGuard g : guards) g.check();
+            }
+        }
+    }
+
+    private final Socket socket;
+    private final Watchdog watchdog;
+    private final long start;
+
+    private volatile boolean headerComplete = false;
+    private volatile String reason = null;
+    private volatile Process process = null;
+
+    // time spent blocked in reads/writes and the bytes moved since the request head was parsed
+    private volatile long ioTime = 0;
+    private volatile long ioStart = -1;
+    private volatile long bytes = 0;
+
+    public ConnectionGuard(Socket socket, Watchdog watchdog) {
+        this.socket = socket;
+        this.watchdog = watchdog;
+        this.start = System.currentTimeMillis();
+        watchdog.guards.add(this);
+    }
+
+    /**
+     * Marks the request head as received: the header deadline no longer applies and
+     * the minimum transfer rate is measured from now on.
+     */
+    public void headerComplete() {
+        headerComplete = true;
+        ioTime = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Registers a process that is killed together with the connection if a deadline is missed.
+     *
+     * @param p the process
+     */
+    public void watch(Process p) {
+        this.process = p;
+        if (reason != null) p.destroyForcibly();
+    }
+
+    /**
+     * Returns the milliseconds left until the request deadline.
+     *
+     * @return the remaining time, or {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public long remaining() {
+        if (Server.REQUEST_TIMEOUT <= 0) return Long.MAX_VALUE;
+        return Math.max(0, start + Server.REQUEST_TIMEOUT - System.currentTimeMillis());
+    }
+
+    /**
+     * @return if the connection was torn down because of a missed deadline
+     */
+    public boolean isExpired() {
+        return reason != null;
+    }
+
+    /**
+     * @return the reason the connection was torn down, or null
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Stops watching the connection. Must be called once the connection is closed.
+     */
+    public void close() {
+        watchdog.guards.remove(this);
+    }
+
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                begin();
+                try {
+                    int b = super.read();
+                    if (b >= 0) bytes++;
+                    return b;
+                } finally {
+                    end();
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                begin();
+                try {
+                    int n = super.read(b, off, len);
+                    if (n > 0) bytes += n;
+                    return n;
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                begin();
+                try {
+                    out.write(b);
+                    bytes++;
+                } finally {
+                    end();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                begin();
+                try {
+                    out.write(b, off, len);
+                    bytes += len;
+                } finally {
+                    end();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                begin();
+                try {
+                    out.flush();
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    private void begin() {
+        ioStart = System.currentTimeMillis();
+    }
+
+    private void end() {
+        long s = ioStart;
+        ioStart = -1;
+        if (s >= 0) ioTime += System.currentTimeMillis() - s;
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        if (!headerComplete && Server.HEADER_TIMEOUT > 0 && now - start > Server.HEADER_TIMEOUT) {
+            expire("request head not received within " + Server.HEADER_TIMEOUT + "ms");
+        } else if (Server.REQUEST_TIMEOUT > 0 && now - start > Server.REQUEST_TIMEOUT) {
+            expire("request not completed within " + Server.REQUEST_TIMEOUT + "ms");
+        } else if (headerComplete && Server.MIN_RATE > 0) {
+            long s = ioStart;
+            long time = ioTime + ((s >= 0) ? now - s : 0);
+            if (time > RATE_GRACE && bytes * 1000 / time < Server.MIN_RATE) {
+                expire("transfer rate below " + Server.MIN_RATE + " bytes/s");
+            }
+        }
+    }
+
+    /**
+     * Tears the connection down now: kills the watched process and closes the socket.
+     *
+     * @param why the reason, reported by {@link #getReason()}
+     */
+    public void expire(String why) {
+        reason = why;
+        watchdog.guards.remove(this);
+        Process p = process;
+        if (p != null) p.destroyForcibly();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.mieze.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps long-lived WebSocket and Server-Sent Events connections on a single selector thread.<br>
+ *
+ * After the handshake, a connection is subscribed to a topic (the request path) and costs no thread.
+ * Pages publish messages to a topic; each message is encoded once and the same frame is queued on all subscribers.
+ * Subscribers that can not keep up with their queue, or do not answer pings, are dropped.
+ * Messages sent by WebSocket clients are read (so ping/pong and close work) but not delivered anywhere.
+ */
+class EventLoop implements Runnable {
+    private static final int MAX_QUEUE = 1024 * 1024;
+    private static final int MAX_MESSAGE = 64 * 1024;
+    private static final int PING_INTERVAL = 30_000;
+
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+
+    // status codes of close frames
+    private static final int GOING_AWAY = 1001;
+    private static final int PROTOCOL_ERROR = 1002;
+    private static final int TOO_BIG = 1009;
+
+    private static final ByteBuffer WS_PING = frame(PING, new byte[0]);
+    private static final ByteBuffer SSE_PING = ByteBuffer.wrap(": ping\n\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // only used by the loop thread
+    private final HashMap<String, Set<Subscriber>> topics = new HashMap<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(512);
+    private boolean running = true;
+    // set when the loop thread exits (while holding the lock of runTasks), tasks are then run by the thread submitting them
+    private volatile boolean stopped = false;
+    private long nextPing = System.currentTimeMillis() + PING_INTERVAL;
+
+    private static class Subscriber {
+        final SocketChannel channel;
+        final String topic;
+        final boolean webSocket;
+        SelectionKey key;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        long queued = 0;
+        boolean closing = false;
+        boolean awaitingPong = false;
+        // WebSocket input: unparsed bytes and the fragments of the current message
+        ByteBuffer in;
+        ByteArrayOutputStream message = null;
+
+        Subscriber(SocketChannel channel, String topic, boolean webSocket) {
+            this.channel = channel;
+            this.topic = topic;
+            this.webSocket = webSocket;
+            this.in = webSocket ? ByteBuffer.allocate(1024) : null;
+        }
+    }
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a connection to the loop after the handshake was sent.
+     *
+     * @param channel the connection
+     * @param topic the topic to subscribe to
+     * @param webSocket true for a WebSocket, false for an event stream
+     * @param leftover bytes the client sent after the request head
+     */
+    public void subscribe(SocketChannel channel, String topic, boolean webSocket, byte[] leftover) {
+        execute(() -> {
+            if (stopped) {
+                close(channel);
+                return;
+            }
+            Subscriber s = new Subscriber(channel, topic, webSocket);
+            try {
+                channel.configureBlocking(false);
+                s.key = channel.register(selector, SelectionKey.OP_READ, s);
+                topics.computeIfAbsent(topic, t -> new LinkedHashSet<>()).add(s);
+                if (Server.VERBOSE) System.out.println((webSocket ? "WebSocket" : "Event stream") + " subscribed to " + topic);
+                if (webSocket && leftover.length > 0) {
+                    if (leftover.length > s.in.capacity()) s.in = ByteBuffer.allocate(leftover.length);
+                    s.in.put(leftover);
+                    parse(s);
+                }
+            } catch (IOException e) {
+                close(channel);
+            } catch (RuntimeException e) {
+                failed(s, e);
+            }
+        });
+    }
+
+    /**
+     * Sends a text message to all subscribers of a topic.
+     *
+     * @param topic the topic
+     * @param message the message
+     */
+    public void publish(String topic, String message) {
+        // encoded once here, shared by all subscribers
+        ByteBuffer wsFrame = frame(TEXT, message.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer sseFrame = event(message);
+        execute(() -> {
+            Set<Subscriber> subscribers = topics.get(topic);
+            if (subscribers == null) return;
+            for (Subscriber s : new ArrayList<>(subscribers)) send(s, s.webSocket ? wsFrame : sseFrame);
+        });
+    }
+
+    /**
+     * Closes all connections (WebSockets with "going away") and stops the loop.
+     */
+    public void close() {
+        execute(() -> {
+            closeAll();
+            running = false;
+        });
+    }
+
+    private void closeAll() {
+        for (Set<Subscriber> subscribers : topics.values()) {
+            for (Subscriber s : subscribers) {
+                // best effort, the queue is not flushed any more
+                if (s.webSocket && s.queue.isEmpty()) {
+                    try {
+                        s.channel.write(closeFrame(GOING_AWAY));
+                    } catch (IOException|RuntimeException e) {
+                        // gone already
+                    }
+                }
+                close(s.channel);
+            }
+        }
+        topics.clear();
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+        // nobody else would run it, e.g. a new connection would never be closed
+        if (stopped) runTasks();
+    }
+
+    private synchronized void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task error:");
+                e.printStackTrace();
+                System.err.println();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(Math.max(1, nextPing - System.currentTimeMillis()));
+                runTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Subscriber s = (Subscriber) key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isWritable()) flush(s);
+                        if (key.isValid() && key.isReadable()) read(s);
+                    } catch (RuntimeException e) {
+                        failed(s, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (System.currentTimeMillis() >= nextPing) {
+                    ping();
+                    nextPing = System.currentTimeMillis() + PING_INTERVAL;
+                }
+            }
+        } catch (IOException|RuntimeException e) {
+            System.err.println("Event loop error:");
+            e.printStackTrace();
+            System.err.println();
+        } finally {
+            // subscribers of a failed loop are closed instead of being stranded. Threads running tasks
+            // once stopped is set take the same lock, so they only touch the topics after this cleanup
+            synchronized (this) {
+                stopped = true;
+                try {
+                    closeAll();
+                } finally {
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                    runTasks();
+                }
+            }
+        }
+    }
+
+    private void ping() {
+        for (Set<Subscriber> subscribers : new ArrayList<>(topics.values())) {
+            for (Subscriber s : new ArrayList<>(subscribers)) {
+                if (!s.webSocket) {
+                    send(s, SSE_PING);
+                } else if (s.awaitingPong) {
+                    if (Server.VERBOSE) System.out.println("WebSocket did not answer ping, closing...");
+                    drop(s);
+                } else {
+                    s.awaitingPong = true;
+                    send(s, WS_PING);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a shared frame on a subscriber and writes as much as the socket accepts right away.
+     */
+    private void send(Subscriber s, ByteBuffer frame) {
+        if (s.closing) return;
+        ByteBuffer b = frame.duplicate();
+        s.queue.add(b);
+        s.queued += b.remaining();
+        if (s.queued > MAX_QUEUE) {
+            if (Server.VERBOSE) System.out.println("Subscriber of " + s.topic + " is too slow, closing...");
+            drop(s);
+            return;
+        }
+        flush(s);
+    }
+
+    private void flush(Subscriber s) {
+        try {
+            while (!s.queue.isEmpty()) {
+                ByteBuffer b = s.queue.peek();
+                s.queued -= s.channel.write(b);
+                if (b.hasRemaining()) {
+                    s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                s.queue.poll();
+            }
+            s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (s.closing) drop(s);
+        } catch (IOException e) {
+            drop(s);
+        } catch (RuntimeException e) {
+            failed(s, e);
+        }
+    }
+
+    private void read(Subscriber s) {
+        try {
+            int n;
+            if (!s.webSocket) {
+                // nothing is expected from event stream clients, only the end of the stream
+                discard.clear();
+                n = s.channel.read(discard);
+            } else {
+                n = s.channel.read(s.in);
+                if (n > 0) parse(s);
+            }
+            if (n < 0) drop(s);
+        } catch (IOException e) {
+            drop(s);
+        } catch (RuntimeException e) {
+            failed(s, e);
+        }
+    }
+
+    /**
+     * Handles all complete frames in the input buffer of a WebSocket (RFC 6455, section 5).
+     */
+    private void parse(Subscriber s) {
+        ByteBuffer in = s.in;
+        in.flip();
+        int need = 0;
+        while (!s.closing && in.remaining() >= 2) {
+            int pos = in.position();
+            int b0 = in.get(pos) & 0xff;
+            int b1 = in.get(pos + 1) & 0xff;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0f;
+            // no extensions are negotiated, and client frames must be masked
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                closeWith(s, PROTOCOL_ERROR);
+                break;
+            }
+            long len = b1 & 0x7f;
+            int header = 2;
+            if (len == 126) {
+                if (in.remaining() < 4) break;
+                len = in.getShort(pos + 2) & 0xffff;
+                header = 4;
+            } else if (len == 127) {
+                if (in.remaining() < 10) break;
+                len = in.getLong(pos + 2);
+                header = 10;
+            }
+            if (len < 0 || len > MAX_MESSAGE) {
+                closeWith(s, TOO_BIG);
+                break;
+            }
+            header += 4;
+            if (in.remaining() < header + len) {
+                need = header + (int) len;
+                break;
+            }
+            byte[] payload = new byte[(int) len];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (in.get(pos + header + i) ^ in.get(pos + header - 4 + (i & 3)));
+            }
+            in.position(pos + header + payload.length);
+            onFrame(s, fin, opcode, payload);
+        }
+        in.compact();
+        if (need > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(need);
+            in.flip();
+            bigger.put(in);
+            s.in = bigger;
+        }
+    }
+
+    private void onFrame(Subscriber s, boolean fin, int opcode, byte[] payload) {
+        // control frames must not be fragmented and carry at most 125 bytes (section 5.5)
+        if ((opcode & 0x8) != 0 && (!fin || payload.length > 125)) {
+            closeWith(s, PROTOCOL_ERROR);
+            return;
+        }
+        switch (opcode) {
+        case CLOSE:
+            // a close payload is empty or starts with a 2 byte status code
+            if (payload.length == 1) {
+                closeWith(s, PROTOCOL_ERROR);
+                break;
+            }
+            // echo the status code, then close once it is sent
+            send(s, frame(CLOSE, (payload.length >= 2) ? new byte[]{payload[0], payload[1]} : new byte[0]));
+            s.closing = true;
+            if (s.queue.isEmpty()) drop(s);
+            break;
+        case PING:
+            send(s, frame(PONG, payload));
+            break;
+        case PONG:
+            s.awaitingPong = false;
+            break;
+        case TEXT:
+        case BINARY:
+            // a new message must not start before the fragmented one is finished
+            if (s.message != null) {
+                closeWith(s, PROTOCOL_ERROR);
+                break;
+            }
+            s.message = new ByteArrayOutputStream();
+            onFragment(s, fin, payload);
+            break;
+        case CONTINUATION:
+            if (s.message == null) {
+                closeWith(s, PROTOCOL_ERROR);
+                break;
+            }
+            onFragment(s, fin, payload);
+            break;
+        default:
+            closeWith(s, PROTOCOL_ERROR);
+            break;
+        }
+    }
+
+    private void onFragment(Subscriber s, boolean fin, byte[] payload) {
+        if (s.message.size() + payload.length > MAX_MESSAGE) {
+            closeWith(s, TOO_BIG);
+            return;
+        }
+        s.message.writeBytes(payload);
+        if (fin) {
+            if (Server.VERBOSE) System.out.println("Ignored WebSocket message of " + s.message.size() + " bytes on " + s.topic);
+            s.message = null;
+        }
+    }
+
+    private void closeWith(Subscriber s, int status) {
+        send(s, closeFrame(status));
+        s.closing = true;
+        if (s.queue.isEmpty()) drop(s);
+    }
+
+    /**
+     * Drops a subscriber after an unexpected error, so the loop keeps serving the others.
+     */
+    private void failed(Subscriber s, RuntimeException e) {
+        System.err.println("Event loop error on " + s.topic + ", closing subscriber:");
+        e.printStackTrace();
+        System.err.println();
+        drop(s);
+    }
+
+    private void drop(Subscriber s) {
+        if (s.key != null) s.key.cancel();
+        close(s.channel);
+        s.queue.clear();
+        s.closing = true;
+        Set<Subscriber> subscribers = topics.get(s.topic);
+        if (subscribers != null && subscribers.remove(s) && subscribers.isEmpty()) topics.remove(s.topic);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private static ByteBuffer closeFrame(int status) {
+        return frame(CLOSE, new byte[]{(byte) (status >> 8), (byte) status});
+    }
+
+    /**
+     * Encodes an unmasked, unfragmented WebSocket frame.
+     */
+    private static ByteBuffer frame(int opcode, byte[] payload) {
+        int len = payload.length;
+        int header = (len < 126) ? 2 : (len < 65536) ? 4 : 10;
+        ByteBuffer b = ByteBuffer.allocate(header + len);
+        b.put((byte) (0x80 | opcode));
+        if (len < 126) {
+            b.put((byte) len);
+        } else if (len < 65536) {
+            b.put((byte) 126);
+            b.putShort((short) len);
+        } else {
+            b.put((byte) 127);
+            b.putLong(len);
+        }
+        b.put(payload);
+        b.flip();
+        return b.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a message as a Server-Sent Event, one data line per line of the message.
+     */
+    private static ByteBuffer event(String message) {
+        StringBuilder sb = new StringBuilder(message.length() + 16);
+        for (String line : message.split("\r\n|\r|\n", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
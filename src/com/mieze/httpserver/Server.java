@@ -1,22 +1,37 @@
 package com.mieze.httpserver;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 public class Server implements Runnable {
@@ -27,28 +42,173 @@ public class Server implements Runnable {
 
     public static int PORT = 8080;
     public static boolean VERBOSE = false;
+
+    // deadlines in milliseconds, minimum rate in bytes per second (0 disables)
+    public static int HEADER_TIMEOUT = 10_000;
+    public static int IDLE_TIMEOUT = 30_000;
+    public static int REQUEST_TIMEOUT = 120_000;
+    public static int MIN_RATE = 256;
+
+    public static long MAX_BODY_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_LINE = 8192;
+
+    // graceful shutdown: time in milliseconds in-flight requests may take after SIGTERM/SIGINT
+    public static int DRAIN_TIMEOUT = 30_000;
+    public static boolean REUSE_PORT = false;
+    private static volatile boolean DRAINING = false;
+    private static volatile long DRAIN_START = 0;
+    static final Set<Server> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    // number of acceptor threads, each with its own listener and handler pool
+    public static int ACCEPTORS = 1;
+
+    // key-value store shared by all pages, and the sessions kept in it
+    public static int STORE_SIZE = 100_000;
+    public static File STORE_FILE = null;
+    public static int SESSION_TIMEOUT = 30 * 60_000;
+    public static final String SESSION_COOKIE = "HTTPSERVER_SESSION";
+    // 18 random bytes in base64url, as issued by getSession
+    private static final Pattern SESSION_ID = Pattern.compile("[A-Za-z0-9_-]{24}");
+    private static final int STORE_SWEEP = 10;
+    private static KeyValueStore STORE;
+    private static StoreServer STORE_SERVER;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // long-lived WebSocket and event stream connections
+    private static EventLoop EVENTS;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // origins of other sites allowed to open WebSockets, "*" for all (the server's own origin always is)
+    public static Set<String> ALLOWED_ORIGINS = Set.of();
     
     private Socket socket;
+    private final ConnectionGuard guard;
+    private volatile boolean idle = true;
+    private volatile boolean closedIdle = false;
+    private boolean handedOff = false;
 
-    public Server(Socket s) {
+    public Server(Socket s, ConnectionGuard.Watchdog watchdog) {
         this.socket = s;
+        // created on accept, so the header deadline also covers the time waiting for a handler thread
+        this.guard = new ConnectionGuard(s, watchdog);
     }
 
     public static void main(String[] args) {
         parseArgs(args);
-        try (ServerSocket connection = new ServerSocket(PORT)) {
-            System.out.println("Server started.\nListening on port: " + PORT + "\n");
-
-            while (true) {
-                Server ws = new Server(connection.accept());
-                if (VERBOSE) System.out.println("Connection opened at " + new Date() + ".");
+        if (ACCEPTORS > 1 && !Acceptor.supportsReusePort()) {
+            System.err.println("SO_REUSEPORT is not supported on this platform, using a single acceptor.");
+            ACCEPTORS = 1;
+        }
 
-                Thread thread = new Thread(ws);
-                thread.start();
+        try {
+            EVENTS = new EventLoop();
+            STORE = new KeyValueStore(STORE_SIZE, STORE_FILE);
+            STORE_SERVER = new StoreServer(STORE, EVENTS);
+        } catch (IOException e) {
+            System.err.println("Could not start the store.\nStack trace:\n");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        Thread eventThread = new Thread(EVENTS, "event-loop");
+        eventThread.setDaemon(true);
+        eventThread.start();
+        Thread storeThread = new Thread(STORE_SERVER, "store");
+        storeThread.setDaemon(true);
+        storeThread.start();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "store-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(STORE::sweep, STORE_SWEEP, STORE_SWEEP, TimeUnit.SECONDS);
+
+        List<Thread> acceptors = new ArrayList<>();
+        try {
+            for (int i = 0; i < ACCEPTORS; i++) {
+                // with SO_REUSEPORT a replacement process can bind the port before this one stops accepting
+                Acceptor acceptor = new Acceptor(i, REUSE_PORT || ACCEPTORS > 1);
+                acceptors.add(new Thread(acceptor, "acceptor-" + i));
             }
         } catch (IOException e) {
             System.err.println("Server connection error.\nStack trace:\n");
             e.printStackTrace();
+            STORE_SERVER.close();
+            System.exit(1);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(acceptors), "drain"));
+        for (Thread t : acceptors) t.start();
+        System.out.println("Server started.\nListening on port: " + PORT + " (" + ACCEPTORS + " acceptor(s))\n");
+    }
+
+    static boolean isDraining() {
+        return DRAINING;
+    }
+
+    static long getDrainStart() {
+        return DRAIN_START;
+    }
+
+    /**
+     * Called on SIGTERM/SIGINT: stops accepting, closes idle connections and waits for
+     * in-flight requests until {@link #DRAIN_TIMEOUT} passed, then aborts the rest (killing their pages).
+     * The JVM exits when this returns.
+     */
+    private static void drain(List<Thread> acceptors) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        DRAIN_START = System.currentTimeMillis();
+        DRAINING = true;
+        System.out.println("Draining " + ACTIVE.size() + " connection(s)...");
+        try {
+            for (Thread t : acceptors) t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            EVENTS.close();
+            for (Server s : ACTIVE) s.closeIfIdle();
+            while (!ACTIVE.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(Acceptor.BACKLOG_POLL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!ACTIVE.isEmpty()) {
+            System.out.println("Aborting " + ACTIVE.size() + " connection(s).");
+            for (Server s : ACTIVE) s.guard.expire("drain timeout of " + DRAIN_TIMEOUT + "ms passed");
+        }
+        STORE_SERVER.close();
+        STORE.close();
+        System.out.println("Server stopped.");
+    }
+
+    /**
+     * A session of a client.
+     *
+     * @param id the session id
+     * @param fresh if the id is new; the session only exists if the page starts it, which needs the cookie to be set
+     */
+    private record Session(String id, boolean fresh) {};
+
+    /**
+     * Returns the session of the request if the server knows it, or a new id the page can start a session with.
+     * Refreshing the session's key keeps all its values alive.
+     *
+     * @param cookie the id from the session cookie, or null
+     * @return the {@link Session}
+     */
+    private static Session getSession(String cookie) {
+        // only ids issued by this server are accepted, so clients can not choose their session id,
+        // and other keys (e.g. "ID:key", a value of a session) can not be passed off as one
+        if (cookie != null && SESSION_ID.matcher(cookie).matches() && STORE.touch(KeyValueStore.SESSION_PREFIX + cookie, SESSION_TIMEOUT)) return new Session(cookie, false);
+        byte[] id = new byte[18];
+        RANDOM.nextBytes(id);
+        // nothing is stored until the page calls getSession(), so requests without a cookie do not fill the store
+        return new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(id), true);
+    }
+
+    private synchronized void closeIfIdle() {
+        if (!idle) return;
+        closedIdle = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
         }
     }
 
@@ -83,6 +243,61 @@ public class Server implements Runnable {
         if (default_file == null) default_file = arguments.get("-d");
         if (default_file != null && default_file.length() > 0) DEFAULT_FILE = default_file;
 
+        HEADER_TIMEOUT = parseSeconds(arguments.get("--header-timeout"), HEADER_TIMEOUT);
+        IDLE_TIMEOUT = parseSeconds(arguments.get("--idle-timeout"), IDLE_TIMEOUT);
+        REQUEST_TIMEOUT = parseSeconds(arguments.get("--request-timeout"), REQUEST_TIMEOUT);
+
+        String minRate = arguments.get("--min-rate");
+        if (minRate != null && minRate.length() > 0) {
+            try {
+                int rate = Integer.parseInt(minRate);
+                if (rate < 0) throw new NumberFormatException("negative rate");
+                MIN_RATE = rate;
+            } catch (NumberFormatException e) {
+                System.err.println("Could not parse rate " + minRate);
+            }
+        }
+
+        DRAIN_TIMEOUT = parseSeconds(arguments.get("--drain-timeout"), DRAIN_TIMEOUT);
+        if (arguments.get("--reuse-port") != null) REUSE_PORT = true;
+
+        String acceptors = arguments.get("--acceptors");
+        if (acceptors != null && acceptors.length() > 0) {
+            try {
+                ACCEPTORS = Integer.parseInt(acceptors);
+                if (ACCEPTORS == 0) ACCEPTORS = Runtime.getRuntime().availableProcessors();
+                if (ACCEPTORS < 0) ACCEPTORS = 1;
+            } catch (NumberFormatException e) {
+                System.err.println("Could not parse acceptor count " + acceptors);
+            }
+        }
+
+        SESSION_TIMEOUT = parseSeconds(arguments.get("--session-timeout"), SESSION_TIMEOUT);
+
+        String storeSize = arguments.get("--store-size");
+        if (storeSize != null && storeSize.length() > 0) {
+            try {
+                STORE_SIZE = Integer.parseInt(storeSize);
+            } catch (NumberFormatException e) {
+                System.err.println("Could not parse store size " + storeSize);
+            }
+        }
+
+        String origins = arguments.get("--allowed-origins");
+        if (origins != null && origins.length() > 0) ALLOWED_ORIGINS = Set.of(origins.toLowerCase().split(","));
+
+        String storeFile = arguments.get("--store-file");
+        if (storeFile != null && storeFile.length() > 0) STORE_FILE = new File(storeFile);
+
+        String maxBody = arguments.get("--max-body-size");
+        if (maxBody != null && maxBody.length() > 0) {
+            try {
+                MAX_BODY_SIZE = Long.parseLong(maxBody);
+            } catch (NumberFormatException e) {
+                System.err.println("Could not parse size " + maxBody);
+            }
+        }
+
         String configureDir = arguments.get("--configure");
         if (configureDir == null) configureDir = arguments.get("-c");
         if (configureDir != null) {
@@ -208,26 +423,61 @@ public class Server implements Runnable {
                     -w/--web-root       set web root
                     -c/--configure      configure java source folder at given location. (the generated compile script will link to web root.)
                     -d/--default-file   set the default file show on the webserver (GET /)
+                    --header-timeout    seconds a client may take to send the request head (default 10, 0 disables)
+                    --idle-timeout      seconds a connection may stay silent while reading (default 30, 0 disables)
+                    --request-timeout   seconds a whole request may take, including the response (default 120, 0 disables)
+                    --min-rate          minimum transfer rate of bodies and responses in bytes/s (default 256, 0 disables)
+                    --max-body-size     maximum size of a request body in bytes (default 64 MiB)
+                    --drain-timeout     seconds in-flight requests may take after SIGTERM/SIGINT (default 30)
+                    --reuse-port        bind with SO_REUSEPORT, so a new server can take over the port before this one is stopped
+                    --acceptors         number of accepting threads, each with its own SO_REUSEPORT listener (default 1, 0 = one per core)
+                    --store-size        maximum number of values in the store shared by pages (default 100000)
+                    --store-file        file the store is logged to and restored from on start (default: not persisted)
+                    --session-timeout   seconds a session of a page is kept after the last request (default 1800)
+                    --allowed-origins   comma separated origins of other sites allowed to open WebSockets, e.g. https://example.com (* for all)
                     --verbose           outputs more debug info
                     """);
             System.exit(0);
         }
     }
 
+    private static int parseSeconds(String value, int def) {
+        if (value == null || value.length() == 0) return def;
+        try {
+            int seconds = Integer.parseInt(value);
+            if (seconds < 0) throw new NumberFormatException("negative timeout");
+            return Math.multiplyExact(seconds, 1000);
+        } catch (NumberFormatException|ArithmeticException e) {
+            System.err.println("Could not parse timeout " + value);
+            return def;
+        }
+    }
+
 	@Override
 	public void run() {
-        BufferedReader in = null;
+        BufferedInputStream in = null;
         PrintWriter out = null;
         BufferedOutputStream outStream = null;
         String requestFile = "";
         String httpMethod = "UNKNOWN";
 
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream());
-            outStream = new BufferedOutputStream(socket.getOutputStream());
-
-            String input = in.readLine();
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            OutputStream rawOut = guard.wrap(socket.getOutputStream());
+            in = new BufferedInputStream(guard.wrap(socket.getInputStream()));
+            out = new PrintWriter(rawOut);
+            outStream = new BufferedOutputStream(rawOut);
+
+            // the connection stops being idle with the first byte, before the request line is complete,
+            // so a drain can not close it between reading the line and marking it busy
+            in.mark(1);
+            if (in.read() < 0) return;
+            in.reset();
+            synchronized (this) {
+                if (closedIdle) return;
+                idle = false;
+            }
+            String input = readLine(in);
             if (input == null || input.length() < 1) return;
             StringTokenizer tokenizer = new StringTokenizer(input);
             httpMethod = tokenizer.nextToken().toUpperCase();
@@ -237,11 +487,73 @@ public class Server implements Runnable {
                 if (VERBOSE) System.out.println("Unsupported http version: '" + httpVersion + "', exiting...");
                 return;
             }
-            String hostString = in.readLine();
-            StringTokenizer tokenizer2 = new StringTokenizer(hostString);
-            tokenizer2.nextToken(); // "Host: "
-            String host = tokenizer2.nextToken().toLowerCase();
-            
+
+            String host = "";
+            String referer = "";
+            String userAgent = "";
+            String sessionCookie = null;
+            String upgrade = "";
+            String accept = "";
+            String origin = null;
+            String webSocketKey = null;
+            String webSocketVersion = "";
+            String bodyType = "";
+            long bodyLength = 0;
+            boolean chunked = false;
+            String next;
+            while ((next = readLine(in)) != null && next.length() > 0) {
+                int firstColon = next.indexOf(':');
+                if (firstColon < 0) continue;
+                String name = next.substring(0, firstColon).toLowerCase();
+                String content = next.substring(firstColon+1).trim();
+                switch (name) {
+                case "host":
+                    host = content.toLowerCase();
+                    break;
+                case "content-type":
+                    bodyType = content;
+                    break;
+                case "content-length":
+                    try {
+                        bodyLength = Long.parseLong(content);
+                    } catch (NumberFormatException e) {
+                        bodyLength = -1;
+                    }
+                    break;
+                case "transfer-encoding":
+                    chunked = !content.equalsIgnoreCase("identity");
+                    break;
+                case "referer":
+                    referer = content;
+                    break;
+                case "user-agent":
+                    userAgent = content;
+                    break;
+                case "upgrade":
+                    upgrade = content;
+                    break;
+                case "accept":
+                    accept = content;
+                    break;
+                case "origin":
+                    origin = content.toLowerCase();
+                    break;
+                case "sec-websocket-key":
+                    webSocketKey = content;
+                    break;
+                case "sec-websocket-version":
+                    webSocketVersion = content;
+                    break;
+                case "cookie":
+                    for (String cookie : content.split(";")) {
+                        String[] pair = cookie.trim().split("=", 2);
+                        if (pair.length == 2 && pair[0].equals(SESSION_COOKIE)) sessionCookie = pair[1];
+                    }
+                    break;
+                }
+            }
+            guard.headerComplete();
+
             if (!httpMethod.equals("GET") && !httpMethod.equals("POST")) {
                 // method not implemented
                 if (VERBOSE) System.err.println("Method " + httpMethod + " not implemented yet.");
@@ -251,6 +563,17 @@ public class Server implements Runnable {
                 byte[] data = readFileData(file, len);
                 sendHeader(out, "text/html", len, 501);
                 sendData(outStream, data);
+            } else if (chunked || bodyLength < 0 || bodyLength > MAX_BODY_SIZE) {
+                // only bodies with a known, bounded length are streamed to pages
+                int code = chunked ? 411 : (bodyLength < 0) ? 400 : 413;
+                if (VERBOSE) System.err.println("Rejected request body (" + code + ")");
+                byte[] data = (code + " " + getStatusMessage(code)).getBytes();
+                sendHeader(out, "text/plain", data.length, code);
+                sendData(outStream, data);
+            } else if (httpMethod.equals("GET") && (upgrade.equalsIgnoreCase("websocket") || accept.contains("text/event-stream"))) {
+                // the path is the topic pages publish to
+                String topic = requestFile.split("\\?")[0].toLowerCase();
+                handedOff = subscribe(in, out, outStream, topic, upgrade.equalsIgnoreCase("websocket"), webSocketKey, webSocketVersion, host, origin);
             } else {
                 // method implemented
                 if (requestFile.endsWith("/")) requestFile += DEFAULT_FILE;
@@ -270,47 +593,23 @@ public class Server implements Runnable {
                 int len = (int)file.length();
                 String contentType = getContentType(requestFile);
 
-                String next = "<>";
-                String referer = "";
-                String userAgent = "";
-                while (in.ready()) {
-                    next = in.readLine();
-                    if (next == null || next.length() < 0) break;
-                    int firstColon = next.indexOf(':');
-                    if (firstColon < 0) break;
-                    String name = next.substring(0, firstColon);
-                    String content = next.substring(firstColon+2);
-                    switch (name) {
-                    case "Content-Type":
-                        break;
-                    case "Referer":
-                        referer = content;
-                        break;
-                    case "User-Agent":
-                        userAgent = content;
-                        break;
-                    }
-                }
-
-                if (httpMethod.equals("POST")) {
-                    // post to file
-                    String argString = "";
-                    while (in.ready()) {
-                        argString += (char)in.read();
-                    }
-                    args = argString.split("&");
-                }
-
                 byte[] data;
+                Session session = null;
                 if (!contentType.equals("java/jar")) {
                     data = readFileData(file, len);
                 } else {
-                    data = runJava(file, concat(new String[]{httpMethod, host, PORT+"", referer, userAgent}, args), host);
+                    session = getSession(sessionCookie);
+                    // the body is streamed to the page's stdin instead of being passed as arguments
+                    data = runJava(file, concat(new String[]{httpMethod, host, PORT+"", referer, userAgent}, args), in, bodyLength, bodyType, session.id());
                     len = data.length;
                     contentType = "text/html";
                 }
 
-                sendHeader(out, contentType, len, 200);
+                if (session != null && session.fresh() && STORE.get(KeyValueStore.SESSION_PREFIX + session.id()) != null) {
+                    sendHeader(out, contentType, len, 200, "Set-Cookie: " + SESSION_COOKIE + "=" + session.id() + "; Path=/; HttpOnly; SameSite=Lax");
+                } else {
+                    sendHeader(out, contentType, len, 200);
+                }
                 sendData(outStream, data);
 
                 System.out.println(((httpMethod.equals("GET"))?"GET ":"POST to ") + requestFile + " of type " + contentType + " (200 OK)");
@@ -336,19 +635,31 @@ public class Server implements Runnable {
                     e2.printStackTrace();
                 }
             }
+        } catch (SocketTimeoutException e) {
+            if (VERBOSE) System.out.println("Connection idle for more than " + IDLE_TIMEOUT + "ms, closing...");
         } catch (IOException e) {
-            System.err.println("Server IO Error:");
-            e.printStackTrace();
-            System.err.println();
+            if (guard.isExpired()) {
+                if (VERBOSE) System.out.println("Connection torn down: " + guard.getReason());
+            } else if (closedIdle) {
+                if (VERBOSE) System.out.println("Closed idle connection while draining");
+            } else {
+                System.err.println("Server IO Error:");
+                e.printStackTrace();
+                System.err.println();
+            }
         } catch (Exception e) {
             System.err.println("Server ERROR:");
             e.printStackTrace();
             System.err.println();
         } finally {
+           guard.close();
+           ACTIVE.remove(this);
+           // the connection now belongs to the event loop
+           if (handedOff) return;
            try {
-                in.close();
-                out.close();
-                outStream.close();
+                if (in != null) in.close();
+                if (out != null) out.close();
+                if (outStream != null) outStream.close();
                 socket.close();
            } catch (SocketException e) {
                if (VERBOSE) System.out.println("socket already closed...");
@@ -366,20 +677,114 @@ public class Server implements Runnable {
         return Stream.concat(Arrays.stream(a), Arrays.stream(b)).toArray(String[]::new);
     }
 
-    private byte[] runJava(File f, String[] args, String host) throws FileNotFoundException {
+    /**
+     * Answers a WebSocket upgrade or an event stream request and hands the connection to the {@link EventLoop}.
+     *
+     * @return if the connection was handed off
+     */
+    private boolean subscribe(BufferedInputStream in, PrintWriter out, BufferedOutputStream outStream, String topic,
+            boolean webSocket, String key, String version, String host, String origin) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        // browsers let any site open WebSockets (unlike event streams, which need CORS), so other origins are refused
+        if (webSocket && !isAllowedOrigin(origin, host)) {
+            if (VERBOSE) System.out.println("Refused WebSocket from origin " + origin);
+            byte[] data = "403 Forbidden".getBytes();
+            sendHeader(out, "text/plain", data.length, 403);
+            sendData(outStream, data);
+            return false;
+        }
+        if (webSocket && (key == null || !version.equals("13"))) {
+            byte[] data = "426 Upgrade Required".getBytes();
+            sendHeader(out, "text/plain", data.length, 426, "Sec-WebSocket-Version: 13");
+            sendData(outStream, data);
+            return false;
+        }
+        if (channel == null) {
+            byte[] data = "501 Not Impleneted".getBytes();
+            sendHeader(out, "text/plain", data.length, 501);
+            sendData(outStream, data);
+            return false;
+        }
+
+        if (webSocket) {
+            String acceptKey;
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+                acceptKey = Base64.getEncoder().encodeToString(hash);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            out.print("HTTP/1.1 101 Switching Protocols\r\n");
+            out.print("Upgrade: websocket\r\n");
+            out.print("Connection: Upgrade\r\n");
+            out.print("Sec-WebSocket-Accept: " + acceptKey + "\r\n\r\n");
+        } else {
+            out.print("HTTP/1.1 200 OK\r\n");
+            out.print("Server: Java HTTP 1.1 WebServer by Miezekatze\r\n");
+            out.print("Content-type: text/event-stream\r\n");
+            out.print("Cache-Control: no-cache\r\n\r\n");
+        }
+        out.flush();
+
+        // a WebSocket client may already have sent frames after the handshake
+        byte[] leftover = in.readNBytes(in.available());
+        EVENTS.subscribe(channel, topic, webSocket, leftover);
+        System.out.println("GET " + topic + ((webSocket) ? " (WebSocket)" : " (event stream)"));
+        return true;
+    }
+
+    /**
+     * @param origin the Origin header, or null if the client is not a browser
+     * @param host the Host header
+     * @return if a WebSocket from this origin is allowed
+     */
+    private static boolean isAllowedOrigin(String origin, String host) {
+        if (origin == null || ALLOWED_ORIGINS.contains("*") || ALLOWED_ORIGINS.contains(origin)) return true;
+        // same origin: the part after the scheme is the host the request was sent to
+        int scheme = origin.indexOf("://");
+        return scheme >= 0 && origin.substring(scheme + 3).equals(host);
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (sb.length() >= MAX_LINE) throw new IOException("Request line longer than " + MAX_LINE + " bytes");
+            sb.append((char) c);
+        }
+        if (c == -1 && sb.length() == 0) return null;
+        int l = sb.length();
+        if (l > 0 && sb.charAt(l-1) == '\r') sb.setLength(l-1);
+        return sb.toString();
+    }
+
+    private byte[] runJava(File f, String[] args, InputStream body, long bodyLength, String bodyType, String session) throws IOException {
         if (!f.exists()) throw new FileNotFoundException(f.toString());
+        Process process = null;
         try {
             ProcessBuilder builder = new ProcessBuilder(concat(new String[]{"java", "-jar", f.getAbsolutePath()}, args)).directory(WEB_ROOT);
-            Process process = builder.start();
-            
-            while (process.isAlive()) {
-                // waiting
-            }
+            builder.environment().put("CONTENT_TYPE", bodyType);
+            builder.environment().put("CONTENT_LENGTH", bodyLength + "");
+            builder.environment().put("HTTPSERVER_STORE", STORE_SERVER.getPath().toString());
+            builder.environment().put("SESSION_ID", session);
+            builder.environment().put("SESSION_TIMEOUT", SESSION_TIMEOUT + "");
+            process = builder.start();
+            guard.watch(process);
+            pipeBody(body, bodyLength, process.getOutputStream());
+
+            // reading until EOF waits for the process; the guard kills it if the request deadline passes
             byte[] data = process.getInputStream().readAllBytes();
             byte[] data2 = process.getErrorStream().readAllBytes();
+            if (!process.waitFor(guard.remaining(), TimeUnit.MILLISECONDS)) process.destroyForcibly();
             if (VERBOSE) System.err.println(new String(data2));
             return data;
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return null;
         } catch (IOException e) {
+            // the page was killed together with the connection, reported by the caller
+            if (guard.isExpired()) throw e;
             System.err.println("Error during proces running:");
             e.printStackTrace();
             System.err.println();
@@ -387,6 +792,30 @@ public class Server implements Runnable {
         }
     }
 
+    /**
+     * Copies the request body to the stdin of a page in a separate thread,
+     * so a page writing its output before reading the body can not dead lock.
+     */
+    private void pipeBody(InputStream body, long length, OutputStream stdin) {
+        Thread pump = new Thread(() -> {
+            byte[] buf = new byte[8192];
+            long left = length;
+            try (stdin) {
+                while (left > 0) {
+                    int n = body.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) break;
+                    stdin.write(buf, 0, n);
+                    left -= n;
+                }
+            } catch (IOException e) {
+                // the page exited early, or the client went away
+                if (VERBOSE) System.err.println("Could not pass request body: " + e.getMessage());
+            }
+        }, "body-pump");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
     private String getContentType(String file) {
         if (file.endsWith(".html") || file.endsWith(".html"))
             return "text/html";
@@ -409,27 +838,36 @@ public class Server implements Runnable {
         return data;
     }
 
-    private void sendHeader(PrintWriter out, String mimeType, int len, int code) {
-        String message;
+    private String getStatusMessage(int code) {
         switch (code) {
         case 200:
-            message = "OK";
-            break;
-        case 501:
-            message = "Not Impleneted";
-            break;
+            return "OK";
+        case 400:
+            return "Bad Request";
+        case 403:
+            return "Forbidden";
         case 404:
-            message = "Not Found";
-            break;
+            return "Not Found";
+        case 411:
+            return "Length Required";
+        case 413:
+            return "Payload Too Large";
+        case 426:
+            return "Upgrade Required";
+        case 501:
+            return "Not Impleneted";
         default:
-            message = "Unknown";
-            break;
+            return "Unknown";
         }
-        out.println(String.format("HTTP/1.1 %d %s", code, message));
+    }
+
+    private void sendHeader(PrintWriter out, String mimeType, int len, int code, String... extraHeaders) {
+        out.println(String.format("HTTP/1.1 %d %s", code, getStatusMessage(code)));
         out.println("Server: Java HTTP 1.1 WebServer by Miezekatze");
         out.println("Date: " + new Date());
         out.println("Content-type: " + mimeType);
         out.println("Content-length: " + len);
+        for (String header : extraHeaders) out.println(header);
         out.println();
         out.flush();
     }
@@ -0,0 +1,139 @@
+package com.mieze.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's {@link KeyValueStore} to pages running in their own JVM, and lets them publish to the {@link EventLoop}.<br>
+ *
+ * The socket is a unix domain socket in a new temporary directory, which only the user running the server can access.
+ * Its path is passed to pages in the HTTPSERVER_STORE environment variable.
+ */
+class StoreServer implements Runnable {
+    private final KeyValueStore store;
+    private final EventLoop events;
+    private final Path dir;
+    private final Path path;
+    private final ServerSocketChannel channel;
+    private final ExecutorService clients = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "store-client");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public StoreServer(KeyValueStore store, EventLoop events) throws IOException {
+        this.store = store;
+        this.events = events;
+        this.dir = Files.createTempDirectory("httpserver");
+        this.path = dir.resolve("store.sock");
+        this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path));
+    }
+
+    /**
+     * @return the path of the socket
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                SocketChannel client = channel.accept();
+                clients.execute(() -> serve(client));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stops serving and removes the socket.
+     */
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("Could not remove store socket: " + e.getMessage());
+        }
+        clients.shutdownNow();
+    }
+
+    private void serve(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    // page exited
+                    return;
+                }
+                String key = KeyValueStore.readString(in);
+                String a = KeyValueStore.readString(in);
+                String b = KeyValueStore.readString(in);
+                long number = in.readLong();
+                long ttl = in.readLong();
+
+                String string = null;
+                long result = 0;
+                byte status = KeyValueStore.OK;
+                try {
+                    switch (op) {
+                    case KeyValueStore.GET:
+                        string = store.get(key);
+                        break;
+                    case KeyValueStore.PUT:
+                        store.put(key, a, ttl);
+                        break;
+                    case KeyValueStore.DELETE:
+                        result = store.delete(key) ? 1 : 0;
+                        break;
+                    case KeyValueStore.COMPARE_AND_SET:
+                        result = store.compareAndSet(key, a, b, ttl) ? 1 : 0;
+                        break;
+                    case KeyValueStore.INCREMENT:
+                        result = store.increment(key, number, ttl);
+                        break;
+                    case KeyValueStore.TOUCH:
+                        result = store.touch(key, ttl) ? 1 : 0;
+                        break;
+                    case KeyValueStore.PUBLISH:
+                        events.publish(key, a);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown store operation " + op);
+                    }
+                } catch (RuntimeException e) {
+                    status = KeyValueStore.ERROR;
+                    string = e.toString();
+                }
+                out.writeByte(status);
+                KeyValueStore.writeString(out, string);
+                out.writeLong(result);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (Server.VERBOSE) System.err.println("Store client error: " + e.getMessage());
+        }
+    }
+}